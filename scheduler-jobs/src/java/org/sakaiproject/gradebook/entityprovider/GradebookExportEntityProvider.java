@@ -0,0 +1,325 @@
+package org.sakaiproject.gradebook.entityprovider;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.servlet.http.HttpServletResponse;
+
+import lombok.Setter;
+import lombok.extern.apachecommons.CommonsLog;
+
+import org.apache.commons.lang.StringUtils;
+import org.sakaiproject.authz.api.SecurityService;
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.entitybroker.EntityView;
+import org.sakaiproject.entitybroker.entityprovider.annotations.EntityCustomAction;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.ActionsExecutable;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.AutoRegisterEntityProvider;
+import org.sakaiproject.entitybroker.entityprovider.capabilities.RequestAware;
+import org.sakaiproject.entitybroker.entityprovider.extension.ActionReturn;
+import org.sakaiproject.entitybroker.entityprovider.extension.RequestGetter;
+import org.sakaiproject.entitybroker.exception.EntityException;
+import org.sakaiproject.entitybroker.exception.EntityNotFoundException;
+import org.sakaiproject.entitybroker.util.AbstractEntityProvider;
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.event.api.EventTrackingService;
+import org.sakaiproject.exception.IdUnusedException;
+import org.sakaiproject.gradebook.logic.GradebookExportLogic;
+import org.sakaiproject.gradebook.model.CSVHelper;
+import org.sakaiproject.gradebook.model.CachedExport;
+import org.sakaiproject.memory.api.Cache;
+import org.sakaiproject.memory.api.MemoryService;
+import org.sakaiproject.site.api.Site;
+import org.sakaiproject.site.api.SiteService;
+import org.sakaiproject.tool.gradebook.Gradebook;
+
+
+/**
+ * Entity provider to export the gradebook for a single site on demand, in the same format as the {@link org.sakaiproject.gradebook.jobs.GradebookExportByTerm} job.
+ * Available at /direct/gradebook-export/site/SITEID
+ *
+ * Exports are cached for a short time (gradebook.export.cache.ttl seconds, default 60) so repeated requests are served without recomputation.
+ * Entries are also evicted early if the gradebook version changes or a gradebook, site or realm event is seen for the site on any node.
+ * Only one request builds the export for a site at a time, any others for the same site wait for it and are served from the cache.
+ *
+ * @author Steve Swinsburg (steve.swinsburg@gmail.com)
+ *
+ */
+@CommonsLog
+public class GradebookExportEntityProvider extends AbstractEntityProvider implements AutoRegisterEntityProvider, ActionsExecutable, RequestAware, Observer {
+
+	public final static String ENTITY_PREFIX = "gradebook-export";
+
+	private final String CACHE_NAME = "org.sakaiproject.gradebook.export.cache";
+
+	private Cache cache;
+
+	/**
+	 * gradebook events may reference the gradebook by its id rather than its uid, so keep track of which site each id belongs to
+	 */
+	private Map<String,String> gradebookIdToSiteId = new ConcurrentHashMap<String,String>();
+
+	/**
+	 * per site lock so that only one request builds the export for a site at a time
+	 */
+	private ConcurrentMap<String,Object> buildLocks = new ConcurrentHashMap<String,Object>();
+
+	/**
+	 * per site count of evictions, so an export built while the site was evicted is not cached. Guarded by itself.
+	 */
+	private Map<String,Long> generations = new HashMap<String,Long>();
+
+
+	@Override
+	public String getEntityPrefix() {
+		return ENTITY_PREFIX;
+	}
+
+	public void init() {
+		cache = memoryService.newCache(CACHE_NAME);
+		eventTrackingService.addObserver(this);
+	}
+
+	@Override
+	public void destroy() {
+		eventTrackingService.deleteObserver(this);
+		super.destroy();
+	}
+
+	/**
+	 * Download the CSV export for the given site. Requires the user to be able to grade all students in the site.
+	 * /direct/gradebook-export/site/SITEID
+	 */
+	@EntityCustomAction(action="site", viewKey=EntityView.VIEW_LIST)
+	public ActionReturn getSiteExport(EntityView view, OutputStream out) {
+
+		String siteId = view.getPathSegment(2);
+		if(StringUtils.isBlank(siteId)) {
+			throw new IllegalArgumentException("siteId must be set in order to export a gradebook, via the URL /gradebook-export/site/SITEID");
+		}
+
+		Site site;
+		try {
+			site = siteService.getSite(siteId);
+		} catch (IdUnusedException e) {
+			throw new EntityNotFoundException("Invalid siteId: " + siteId, siteId);
+		}
+
+		if(!securityService.isSuperUser() && !securityService.unlock("gradebook.gradeAll", site.getReference())) {
+			throw new SecurityException("You do not have permission to export the gradebook for site: " + siteId);
+		}
+
+		Gradebook gradebook = gradebookExportLogic.getGradebook(siteId);
+		if(gradebook == null) {
+			throw new EntityNotFoundException("No gradebook for site: " + siteId, siteId);
+		}
+
+		try {
+			if(getCacheTtl() <= 0) {
+				//cache disabled, write straight out
+				CSVHelper csv = gradebookExportLogic.buildSiteExport(site, gradebook);
+				if(csv == null) {
+					throw new EntityNotFoundException("Nothing to export for site: " + siteId, siteId);
+				}
+				setResponseHeaders(siteId);
+				Writer writer = new OutputStreamWriter(out, "UTF-8");
+				gradebookExportLogic.writeCSV(csv, writer);
+				writer.flush();
+			} else {
+				byte[] data = getExport(site, gradebook);
+				if(data == null) {
+					throw new EntityNotFoundException("Nothing to export for site: " + siteId, siteId);
+				}
+				setResponseHeaders(siteId);
+				out.write(data);
+			}
+		} catch (IOException e) {
+			throw new EntityException("Error writing CSV for site: " + siteId, siteId);
+		}
+
+		return new ActionReturn("UTF-8", "text/csv", out);
+	}
+
+	/**
+	 * Set the content type and filename on the response. This must be done before anything is written,
+	 * as a large export will already have been sent by the time the ActionReturn is processed.
+	 * @param siteId
+	 */
+	private void setResponseHeaders(String siteId) {
+		HttpServletResponse response = requestGetter.getResponse();
+		if(response != null) {
+			response.setContentType("text/csv");
+			response.setCharacterEncoding("UTF-8");
+			response.setHeader("Content-Disposition", "attachment; filename=" + siteId + ".csv");
+		}
+	}
+
+	/**
+	 * Get the export for the site from the cache, building and caching it if required
+	 * @param site
+	 * @param gradebook
+	 * @return the CSV data or null if there is nothing to export for this site
+	 * @throws IOException
+	 */
+	private byte[] getExport(Site site, Gradebook gradebook) throws IOException {
+
+		String siteId = site.getId();
+
+		byte[] data = getCachedExport(siteId, gradebook);
+		if(data != null) {
+			return data;
+		}
+
+		synchronized(getBuildLock(siteId)) {
+
+			//another request may have built it while we were waiting
+			data = getCachedExport(siteId, gradebook);
+			if(data != null) {
+				return data;
+			}
+
+			gradebookIdToSiteId.put(String.valueOf(gradebook.getId()), siteId);
+			long generation = getGeneration(siteId);
+
+			CSVHelper csv = gradebookExportLogic.buildSiteExport(site, gradebook);
+			if(csv == null) {
+				return null;
+			}
+
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			Writer writer = new OutputStreamWriter(buffer, "UTF-8");
+			gradebookExportLogic.writeCSV(csv, writer);
+			writer.flush();
+			data = buffer.toByteArray();
+
+			//if the site was evicted while the export was being built it may contain old data, so don't cache it
+			synchronized(generations) {
+				if(getGeneration(siteId) == generation) {
+					cache.put(siteId, new CachedExport(gradebook.getVersion(), data));
+				}
+			}
+
+			return data;
+		}
+	}
+
+	/**
+	 * Get the export for the site from the cache, if it is still valid
+	 * @param siteId
+	 * @param gradebook
+	 * @return the CSV data or null if not cached
+	 */
+	private byte[] getCachedExport(String siteId, Gradebook gradebook) {
+		CachedExport cached = (CachedExport)cache.get(siteId);
+		if(cached != null && cached.isValid(gradebook.getVersion(), getCacheTtl())) {
+			log.debug("Export for site: " + siteId + " served from cache");
+			return cached.getCsv();
+		}
+		return null;
+	}
+
+	private Object getBuildLock(String siteId) {
+		Object lock = new Object();
+		Object existing = buildLocks.putIfAbsent(siteId, lock);
+		return existing != null ? existing : lock;
+	}
+
+	private long getGeneration(String siteId) {
+		synchronized(generations) {
+			Long generation = generations.get(siteId);
+			return generation != null ? generation : 0;
+		}
+	}
+
+	/**
+	 * Get the max age of a cached export, in seconds. Set to 0 to disable the cache.
+	 * @return
+	 */
+	private int getCacheTtl() {
+		return serverConfigurationService.getInt("gradebook.export.cache.ttl", 60);
+	}
+
+	/**
+	 * Evict the cached export for a site when its gradebook, site or realm changes. Anything not covered here is picked up by the ttl.
+	 * Gradebook events reference /gradebook/GRADEBOOKUID/... or /gradebook/GRADEBOOKID/..., site events reference /site/SITEID
+	 * and realm events reference /realm//site/SITEID
+	 */
+	@Override
+	public void update(Observable o, Object arg) {
+		if(!(arg instanceof Event)) {
+			return;
+		}
+
+		Event event = (Event)arg;
+		String eventName = event.getEvent();
+		if(!StringUtils.startsWith(eventName, "gradebook.") && !StringUtils.startsWith(eventName, "site.upd") && !StringUtils.startsWith(eventName, "realm.upd")) {
+			return;
+		}
+
+		if(event.getContext() != null) {
+			evict(event.getContext());
+		}
+
+		String[] parts = StringUtils.split(event.getResource(), '/');
+		if(parts == null) {
+			return;
+		}
+		for(int i = 0; i < parts.length - 1; i++) {
+			if(StringUtils.equals(parts[i], "gradebook") || StringUtils.equals(parts[i], "site")) {
+				evict(parts[i+1]);
+			}
+		}
+	}
+
+	/**
+	 * Evict the cached export for a site id, gradebook uid (which is the site id) or gradebook id
+	 * @param key
+	 */
+	private void evict(String key) {
+		invalidate(key);
+
+		String siteId = gradebookIdToSiteId.get(key);
+		if(siteId != null) {
+			invalidate(siteId);
+		}
+	}
+
+	private void invalidate(String siteId) {
+		synchronized(generations) {
+			generations.put(siteId, getGeneration(siteId) + 1);
+			cache.remove(siteId);
+		}
+	}
+
+
+	@Setter
+	private SiteService siteService;
+
+	@Setter
+	private SecurityService securityService;
+
+	@Setter
+	private EventTrackingService eventTrackingService;
+
+	@Setter
+	private MemoryService memoryService;
+
+	@Setter
+	private ServerConfigurationService serverConfigurationService;
+
+	@Setter
+	private GradebookExportLogic gradebookExportLogic;
+
+	@Setter
+	private RequestGetter requestGetter;
+
+}
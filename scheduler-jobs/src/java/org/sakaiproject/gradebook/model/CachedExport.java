@@ -0,0 +1,46 @@
+package org.sakaiproject.gradebook.model;
+
+import java.io.Serializable;
+
+import lombok.Getter;
+
+/**
+ * Model for a generated export held in the cache, along with the version of the gradebook it was generated from and when
+ * 
+ * @author Steve Swinsburg (steve.swinsburg@gmail.com)
+ *
+ */
+public class CachedExport implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	@Getter
+	private int gradebookVersion;
+	
+	/**
+	 * the CSV data, already encoded
+	 */
+	@Getter
+	private byte[] csv;
+	
+	@Getter
+	private long created;
+	
+	
+	public CachedExport(int gradebookVersion, byte[] csv) {
+		this.gradebookVersion = gradebookVersion;
+		this.csv = csv;
+		this.created = System.currentTimeMillis();
+	}
+	
+	/**
+	 * Check if this export is still usable
+	 * @param gradebookVersion	current version of the gradebook
+	 * @param ttl				max age of the export, in seconds
+	 * @return
+	 */
+	public boolean isValid(int gradebookVersion, long ttl) {
+		return this.gradebookVersion == gradebookVersion && System.currentTimeMillis() - created < ttl * 1000;
+	}
+	
+}
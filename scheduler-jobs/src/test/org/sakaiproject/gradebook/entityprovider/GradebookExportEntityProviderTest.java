@@ -0,0 +1,294 @@
+package org.sakaiproject.gradebook.entityprovider;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.authz.api.SecurityService;
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.entitybroker.EntityView;
+import org.sakaiproject.entitybroker.entityprovider.extension.RequestGetter;
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.event.api.EventTrackingService;
+import org.sakaiproject.gradebook.logic.GradebookExportLogic;
+import org.sakaiproject.gradebook.model.CSVHelper;
+import org.sakaiproject.memory.api.Cache;
+import org.sakaiproject.memory.api.MemoryService;
+import org.sakaiproject.site.api.Site;
+import org.sakaiproject.site.api.SiteService;
+import org.sakaiproject.tool.gradebook.Gradebook;
+
+/**
+ * Tests for {@link GradebookExportEntityProvider} using stubbed Sakai services
+ *
+ * @author Steve Swinsburg (steve.swinsburg@gmail.com)
+ *
+ */
+public class GradebookExportEntityProviderTest {
+
+	private static final String SITE_ID = "site1";
+
+	private GradebookExportEntityProvider provider;
+
+	private SecurityService securityService;
+	private ServerConfigurationService serverConfigurationService;
+	private GradebookExportLogic logic;
+
+	private Site site;
+	private Gradebook gradebook;
+	private CSVHelper csv;
+	private EntityView view;
+	private Cache cache;
+	private HttpServletResponse response;
+
+	@Before
+	public void setUp() throws Exception {
+
+		site = mock(Site.class);
+		when(site.getId()).thenReturn(SITE_ID);
+		when(site.getReference()).thenReturn("/site/" + SITE_ID);
+
+		SiteService siteService = mock(SiteService.class);
+		when(siteService.getSite(SITE_ID)).thenReturn(site);
+
+		securityService = mock(SecurityService.class);
+		when(securityService.unlock("gradebook.gradeAll", "/site/" + SITE_ID)).thenReturn(true);
+
+		serverConfigurationService = mock(ServerConfigurationService.class);
+		when(serverConfigurationService.getInt("gradebook.export.cache.ttl", 60)).thenReturn(60);
+
+		gradebook = mock(Gradebook.class);
+		when(gradebook.getId()).thenReturn(5L);
+		when(gradebook.getUid()).thenReturn(SITE_ID);
+		when(gradebook.getVersion()).thenReturn(1);
+
+		csv = new CSVHelper();
+		logic = mock(GradebookExportLogic.class);
+		when(logic.getGradebook(SITE_ID)).thenReturn(gradebook);
+		when(logic.buildSiteExport(site, gradebook)).thenReturn(csv);
+		doAnswer(new Answer<Void>() {
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				((Writer)invocation.getArguments()[1]).write("Student ID,Student Name");
+				return null;
+			}
+		}).when(logic).writeCSV(any(CSVHelper.class), any(Writer.class));
+
+		cache = mockCache();
+		MemoryService memoryService = mock(MemoryService.class);
+		when(memoryService.newCache(anyString())).thenReturn(cache);
+
+		view = mock(EntityView.class);
+		when(view.getPathSegment(2)).thenReturn(SITE_ID);
+
+		response = mock(HttpServletResponse.class);
+		RequestGetter requestGetter = mock(RequestGetter.class);
+		when(requestGetter.getResponse()).thenReturn(response);
+
+		provider = new GradebookExportEntityProvider();
+		provider.setSiteService(siteService);
+		provider.setSecurityService(securityService);
+		provider.setEventTrackingService(mock(EventTrackingService.class));
+		provider.setMemoryService(memoryService);
+		provider.setServerConfigurationService(serverConfigurationService);
+		provider.setGradebookExportLogic(logic);
+		provider.setRequestGetter(requestGetter);
+		provider.init();
+	}
+
+	@Test(expected=SecurityException.class)
+	public void testNoPermission() {
+		when(securityService.unlock("gradebook.gradeAll", "/site/" + SITE_ID)).thenReturn(false);
+
+		try {
+			export();
+		} finally {
+			verify(logic, never()).buildSiteExport(site, gradebook);
+		}
+	}
+
+	@Test
+	public void testHeadersSetBeforeWriting() throws Exception {
+		OutputStream out = mock(OutputStream.class);
+		provider.getSiteExport(view, out);
+
+		InOrder inOrder = inOrder(response, out);
+		inOrder.verify(response).setContentType("text/csv");
+		inOrder.verify(response).setHeader("Content-Disposition", "attachment; filename=" + SITE_ID + ".csv");
+		inOrder.verify(out).write(any(byte[].class));
+	}
+
+	@Test
+	public void testCacheHit() {
+		assertEquals("Student ID,Student Name", export());
+		assertEquals("Student ID,Student Name", export());
+
+		verify(logic, times(1)).buildSiteExport(site, gradebook);
+		verify(logic, times(2)).getGradebook(SITE_ID);
+	}
+
+	@Test
+	public void testGradebookVersionChanged() {
+		export();
+		when(gradebook.getVersion()).thenReturn(2);
+		export();
+
+		verify(logic, times(2)).buildSiteExport(site, gradebook);
+	}
+
+	@Test
+	public void testCacheDisabled() {
+		when(serverConfigurationService.getInt("gradebook.export.cache.ttl", 60)).thenReturn(0);
+		assertEquals("Student ID,Student Name", export());
+		assertEquals("Student ID,Student Name", export());
+
+		verify(logic, times(2)).buildSiteExport(site, gradebook);
+		verify(cache, never()).put(any(), any());
+	}
+
+	@Test
+	public void testEvictedWhileBuilding() {
+		when(logic.buildSiteExport(site, gradebook)).thenAnswer(new Answer<CSVHelper>() {
+			public CSVHelper answer(InvocationOnMock invocation) throws Throwable {
+				provider.update(null, mockEvent("gradebook.updateItemScore", "/gradebook/5/Assignment 1/u1/9/Instructor"));
+				return csv;
+			}
+		});
+		export();
+		export();
+
+		verify(logic, times(2)).buildSiteExport(site, gradebook);
+		verify(cache, never()).put(any(), any());
+	}
+
+	@Test
+	public void testConcurrentRequestsBuildOnce() throws Exception {
+		final CountDownLatch building = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		when(logic.buildSiteExport(site, gradebook)).thenAnswer(new Answer<CSVHelper>() {
+			public CSVHelper answer(InvocationOnMock invocation) throws Throwable {
+				building.countDown();
+				release.await();
+				return csv;
+			}
+		});
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		Callable<String> request = new Callable<String>() {
+			public String call() {
+				return export();
+			}
+		};
+		Future<String> first = executor.submit(request);
+		building.await();
+		Future<String> second = executor.submit(request);
+		Thread.sleep(100);
+		release.countDown();
+
+		assertEquals("Student ID,Student Name", first.get());
+		assertEquals("Student ID,Student Name", second.get());
+		executor.shutdown();
+
+		verify(logic, times(1)).buildSiteExport(site, gradebook);
+	}
+
+	@Test
+	public void testEvictByGradebookUid() {
+		export();
+		provider.update(null, mockEvent("gradebook.updateItemScore", "/gradebook/" + SITE_ID + "/Assignment 1/u1/9/Instructor"));
+		export();
+
+		verify(logic, times(2)).buildSiteExport(site, gradebook);
+	}
+
+	@Test
+	public void testEvictByGradebookId() {
+		export();
+		provider.update(null, mockEvent("gradebook.updateItemScore", "/gradebook/5/Assignment 1/u1/9/Instructor"));
+		export();
+
+		verify(logic, times(2)).buildSiteExport(site, gradebook);
+	}
+
+	@Test
+	public void testEvictByRealm() {
+		export();
+		provider.update(null, mockEvent("realm.upd", "/realm//site/" + SITE_ID));
+		export();
+
+		verify(logic, times(2)).buildSiteExport(site, gradebook);
+	}
+
+	@Test
+	public void testUnrelatedEventIgnored() {
+		export();
+		provider.update(null, mockEvent("content.new", "/content/group/" + SITE_ID + "/file.txt"));
+		provider.update(null, mockEvent("gradebook.updateItemScore", "/gradebook/othersite/Assignment 1/u1/9/Instructor"));
+		export();
+
+		verify(logic, times(1)).buildSiteExport(site, gradebook);
+	}
+
+
+	private String export() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		provider.getSiteExport(view, out);
+		return out.toString();
+	}
+
+	private Event mockEvent(String name, String resource) {
+		Event event = mock(Event.class);
+		when(event.getEvent()).thenReturn(name);
+		when(event.getResource()).thenReturn(resource);
+		return event;
+	}
+
+	/**
+	 * Cache backed by a map
+	 */
+	private Cache mockCache() {
+		final Map<Object,Object> store = new HashMap<Object,Object>();
+		Cache cache = mock(Cache.class);
+		doAnswer(new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				return store.get(invocation.getArguments()[0]);
+			}
+		}).when(cache).get(any());
+		doAnswer(new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				return store.put(invocation.getArguments()[0], invocation.getArguments()[1]);
+			}
+		}).when(cache).put(any(), any());
+		doAnswer(new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				return store.remove(invocation.getArguments()[0]) != null;
+			}
+		}).when(cache).remove(any());
+		return cache;
+	}
+
+}
@@ -0,0 +1,264 @@
+package org.sakaiproject.gradebook.jobs;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyCollection;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sakaiproject.authz.api.AuthzGroupService;
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.coursemanagement.api.AcademicSession;
+import org.sakaiproject.coursemanagement.api.CourseManagementService;
+import org.sakaiproject.event.api.EventTrackingService;
+import org.sakaiproject.event.api.UsageSessionService;
+import org.sakaiproject.gradebook.logic.GradebookExportLogic;
+import org.sakaiproject.javax.PagingPosition;
+import org.sakaiproject.service.gradebook.shared.Assignment;
+import org.sakaiproject.service.gradebook.shared.CategoryDefinition;
+import org.sakaiproject.service.gradebook.shared.CommentDefinition;
+import org.sakaiproject.service.gradebook.shared.GradebookService;
+import org.sakaiproject.site.api.Site;
+import org.sakaiproject.site.api.SiteService;
+import org.sakaiproject.site.api.SiteService.SelectionType;
+import org.sakaiproject.site.api.SiteService.SortType;
+import org.sakaiproject.tool.api.Session;
+import org.sakaiproject.tool.api.SessionManager;
+import org.sakaiproject.tool.gradebook.GradeMapping;
+import org.sakaiproject.tool.gradebook.Gradebook;
+import org.sakaiproject.user.api.User;
+import org.sakaiproject.user.api.UserDirectoryService;
+
+import com.opencsv.CSVReader;
+
+/**
+ * Tests for the gradebook.export.include.* column selection in {@link GradebookExportByTerm}, using stubbed Sakai services
+ *
+ * @author Steve Swinsburg (steve.swinsburg@gmail.com)
+ *
+ */
+public class GradebookExportByTermTest {
+
+	private static final String SITE_ID = "site1";
+
+	@Rule
+	public TemporaryFolder outputFolder = new TemporaryFolder();
+
+	private GradebookExportByTerm job;
+
+	private ServerConfigurationService serverConfigurationService;
+	private GradebookService gradebookService;
+	private Gradebook gradebook;
+
+	private Locale defaultLocale;
+
+	@Before
+	public void setUp() throws Exception {
+
+		//percentages are locale specific
+		defaultLocale = Locale.getDefault();
+		Locale.setDefault(Locale.US);
+
+		serverConfigurationService = mock(ServerConfigurationService.class);
+		when(serverConfigurationService.getBoolean(anyString(), anyBoolean())).thenReturn(true);
+		when(serverConfigurationService.getString(eq("gradebook.export.path"), anyString())).thenReturn(outputFolder.getRoot().getAbsolutePath());
+		when(serverConfigurationService.getString(eq("gradebook.export.term"), anyString())).thenReturn("2013");
+
+		Site site = mock(Site.class);
+		when(site.getId()).thenReturn(SITE_ID);
+		when(site.getTitle()).thenReturn("Site 1");
+		when(site.getUsersIsAllowed("gradebook.viewOwnGrades")).thenReturn(new HashSet<String>(Arrays.asList("u1", "u2")));
+
+		SiteService siteService = mock(SiteService.class);
+		when(siteService.getSite(SITE_ID)).thenReturn(site);
+		when(siteService.getSites(any(SelectionType.class), any(), anyString(), anyMapOf(String.class, String.class), any(SortType.class), any(PagingPosition.class))).thenReturn(Arrays.asList(site));
+
+		User smith = mockUser("u1", "s1", "Smith", "Smith, Amy");
+		User brown = mockUser("u2", "s2", "Brown", "Brown, Bob");
+		UserDirectoryService userDirectoryService = mock(UserDirectoryService.class);
+		when(userDirectoryService.getUsers(anyCollection())).thenReturn(new ArrayList<User>(Arrays.asList(smith, brown)));
+
+		Map<String,Double> gradeMap = new HashMap<String,Double>();
+		gradeMap.put("A", 90.0);
+		gradeMap.put("B", 80.0);
+		GradeMapping gradeMapping = mock(GradeMapping.class);
+		when(gradeMapping.getGradeMap()).thenReturn(gradeMap);
+
+		gradebook = mock(Gradebook.class);
+		when(gradebook.getUid()).thenReturn(SITE_ID);
+		when(gradebook.getSelectedGradeMapping()).thenReturn(gradeMapping);
+
+		Assignment assignment = mock(Assignment.class);
+		when(assignment.getId()).thenReturn(1L);
+		when(assignment.getName()).thenReturn("Assignment 1");
+		when(assignment.getPoints()).thenReturn(10.0);
+		when(assignment.isExtraCredit()).thenReturn(false);
+
+		CategoryDefinition category = mock(CategoryDefinition.class);
+		when(category.getId()).thenReturn(10L);
+		when(category.getName()).thenReturn("Quizzes");
+		when(category.getWeight()).thenReturn(0.5);
+		when(category.getAssignmentList()).thenReturn(Arrays.asList(assignment));
+
+		CommentDefinition comment = mock(CommentDefinition.class);
+		when(comment.getCommentText()).thenReturn("Good work");
+
+		Map<String,String> courseGrades = new HashMap<String,String>();
+		courseGrades.put("s1", "A");
+		courseGrades.put("s2", "B");
+
+		gradebookService = mock(GradebookService.class);
+		when(gradebookService.getGradebook(SITE_ID)).thenReturn(gradebook);
+		when(gradebookService.getAssignments(SITE_ID)).thenReturn(Arrays.asList(assignment));
+		when(gradebookService.getCategoryDefinitions(SITE_ID)).thenReturn(Arrays.asList(category));
+		when(gradebookService.getImportCourseGrade(SITE_ID)).thenReturn(courseGrades);
+		when(gradebookService.getAssignmentScoreString(SITE_ID, 1L, "u1")).thenReturn("9");
+		when(gradebookService.getAssignmentScoreString(SITE_ID, 1L, "u2")).thenReturn("6");
+		when(gradebookService.getAssignmentScoreComment(SITE_ID, 1L, "u2")).thenReturn(comment);
+
+		GradebookExportLogic logic = new GradebookExportLogic();
+		logic.setServerConfigurationService(serverConfigurationService);
+		logic.setSiteService(siteService);
+		logic.setUserDirectoryService(userDirectoryService);
+		logic.setGradebookService(gradebookService);
+
+		SessionManager sessionManager = mock(SessionManager.class);
+		when(sessionManager.getCurrentSession()).thenReturn(mock(Session.class));
+
+		CourseManagementService courseManagementService = mock(CourseManagementService.class);
+		when(courseManagementService.getCurrentAcademicSessions()).thenReturn(new ArrayList<AcademicSession>());
+
+		job = new GradebookExportByTerm();
+		job.setSessionManager(sessionManager);
+		job.setUsageSessionService(mock(UsageSessionService.class));
+		job.setAuthzGroupService(mock(AuthzGroupService.class));
+		job.setEventTrackingService(mock(EventTrackingService.class));
+		job.setServerConfigurationService(serverConfigurationService);
+		job.setSiteService(siteService);
+		job.setCourseManagementService(courseManagementService);
+		job.setGradebookExportLogic(logic);
+	}
+
+	@After
+	public void tearDown() {
+		Locale.setDefault(defaultLocale);
+	}
+
+	@Test
+	public void testAllColumns() throws Exception {
+		List<String[]> lines = export();
+
+		assertEquals(Arrays.asList("Student ID", "Student Name", "Assignment 1 [10.0]", "Comments", "Quizzes [50%]", "Total Points Earned [Points Possible]", "Course Grade"), Arrays.asList(lines.get(0)));
+		assertEquals(Arrays.asList("s2", "Brown, Bob", "6", "Good work", "60%", "6.0 [10.0]", "B"), Arrays.asList(lines.get(1)));
+
+		//header, 2 students and the 4 footer rows
+		assertEquals(7, lines.size());
+	}
+
+	@Test
+	public void testCommentsExcluded() throws Exception {
+		exclude("comments");
+		List<String[]> lines = export();
+
+		assertEquals(Arrays.asList("Student ID", "Student Name", "Assignment 1 [10.0]", "Quizzes [50%]", "Total Points Earned [Points Possible]", "Course Grade"), Arrays.asList(lines.get(0)));
+		assertEquals(Arrays.asList("s2", "Brown, Bob", "6", "60%", "6.0 [10.0]", "B"), Arrays.asList(lines.get(1)));
+		verify(gradebookService, never()).getAssignmentScoreComment(anyString(), anyLong(), anyString());
+	}
+
+	@Test
+	public void testCategoriesExcluded() throws Exception {
+		exclude("categories");
+		List<String[]> lines = export();
+
+		assertEquals(Arrays.asList("Student ID", "Student Name", "Assignment 1 [10.0]", "Comments", "Total Points Earned [Points Possible]", "Course Grade"), Arrays.asList(lines.get(0)));
+		assertEquals(Arrays.asList("s2", "Brown, Bob", "6", "Good work", "6.0 [10.0]", "B"), Arrays.asList(lines.get(1)));
+		verify(gradebookService, never()).getCategoryDefinitions(anyString());
+	}
+
+	@Test
+	public void testTotalsExcluded() throws Exception {
+		//categories also read each score, so exclude them too in order to count the reads made for the totals
+		exclude("totals");
+		exclude("categories");
+		List<String[]> lines = export();
+
+		assertEquals(Arrays.asList("Student ID", "Student Name", "Assignment 1 [10.0]", "Comments", "Course Grade"), Arrays.asList(lines.get(0)));
+		assertEquals(Arrays.asList("s2", "Brown, Bob", "6", "Good work", "B"), Arrays.asList(lines.get(1)));
+
+		//once per student per assignment for the grade itself, rather than three times with the totals
+		verify(gradebookService, times(1)).getAssignmentScoreString(SITE_ID, 1L, "u1");
+		verify(gradebookService, times(1)).getAssignmentScoreString(SITE_ID, 1L, "u2");
+	}
+
+	@Test
+	public void testCourseGradeExcluded() throws Exception {
+		exclude("coursegrade");
+		List<String[]> lines = export();
+
+		assertEquals(Arrays.asList("Student ID", "Student Name", "Assignment 1 [10.0]", "Comments", "Quizzes [50%]", "Total Points Earned [Points Possible]"), Arrays.asList(lines.get(0)));
+		assertEquals(Arrays.asList("s2", "Brown, Bob", "6", "Good work", "60%", "6.0 [10.0]"), Arrays.asList(lines.get(1)));
+		verify(gradebookService, never()).getImportCourseGrade(anyString());
+	}
+
+	@Test
+	public void testFooterExcluded() throws Exception {
+		exclude("footer");
+		List<String[]> lines = export();
+
+		//header and 2 students only
+		assertEquals(3, lines.size());
+		verify(gradebook, never()).getSelectedGradeMapping();
+	}
+
+
+	/**
+	 * Run the job and read back the file it wrote for the site
+	 */
+	private List<String[]> export() throws Exception {
+		job.execute(null);
+
+		CSVReader reader = new CSVReader(new FileReader(new File(outputFolder.getRoot(), SITE_ID + ".csv")));
+		try {
+			return reader.readAll();
+		} finally {
+			reader.close();
+		}
+	}
+
+	private void exclude(String column) {
+		when(serverConfigurationService.getBoolean("gradebook.export.include." + column, true)).thenReturn(false);
+	}
+
+	private User mockUser(String id, String eid, String lastName, String sortName) {
+		User u = mock(User.class);
+		when(u.getId()).thenReturn(id);
+		when(u.getEid()).thenReturn(eid);
+		when(u.getLastName()).thenReturn(lastName);
+		when(u.getSortName()).thenReturn(sortName);
+		return u;
+	}
+
+}
@@ -0,0 +1,160 @@
+package org.sakaiproject.gradebook.logic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyCollection;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.gradebook.model.CSVHelper;
+import org.sakaiproject.service.gradebook.shared.Assignment;
+import org.sakaiproject.service.gradebook.shared.CategoryDefinition;
+import org.sakaiproject.service.gradebook.shared.CommentDefinition;
+import org.sakaiproject.service.gradebook.shared.GradebookService;
+import org.sakaiproject.site.api.Site;
+import org.sakaiproject.site.api.SiteService;
+import org.sakaiproject.tool.gradebook.GradeMapping;
+import org.sakaiproject.tool.gradebook.Gradebook;
+import org.sakaiproject.user.api.User;
+import org.sakaiproject.user.api.UserDirectoryService;
+
+/**
+ * Tests for {@link GradebookExportLogic} using stubbed Sakai services.
+ * The gradebook.export.include.* column selection is covered by GradebookExportByTermTest.
+ *
+ * @author Steve Swinsburg (steve.swinsburg@gmail.com)
+ *
+ */
+public class GradebookExportLogicTest {
+
+	private static final String SITE_ID = "site1";
+
+	private GradebookExportLogic logic;
+
+	private ServerConfigurationService serverConfigurationService;
+	private GradebookService gradebookService;
+	private UserDirectoryService userDirectoryService;
+
+	private Site site;
+	private Gradebook gradebook;
+
+	private Locale defaultLocale;
+
+	@Before
+	public void setUp() throws Exception {
+
+		//percentages are locale specific
+		defaultLocale = Locale.getDefault();
+		Locale.setDefault(Locale.US);
+
+		serverConfigurationService = mock(ServerConfigurationService.class);
+		when(serverConfigurationService.getBoolean(anyString(), anyBoolean())).thenReturn(true);
+
+		site = mock(Site.class);
+		when(site.getId()).thenReturn(SITE_ID);
+		when(site.getTitle()).thenReturn("Site 1");
+		when(site.getUsersIsAllowed("gradebook.viewOwnGrades")).thenReturn(new HashSet<String>(Arrays.asList("u1", "u2")));
+
+		SiteService siteService = mock(SiteService.class);
+		when(siteService.getSite(SITE_ID)).thenReturn(site);
+
+		User smith = mockUser("u1", "s1", "Smith", "Smith, Amy");
+		User brown = mockUser("u2", "s2", "Brown", "Brown, Bob");
+		userDirectoryService = mock(UserDirectoryService.class);
+		when(userDirectoryService.getUsers(anyCollection())).thenReturn(new ArrayList<User>(Arrays.asList(smith, brown)));
+
+		Map<String,Double> gradeMap = new HashMap<String,Double>();
+		gradeMap.put("A", 90.0);
+		gradeMap.put("B", 80.0);
+		GradeMapping gradeMapping = mock(GradeMapping.class);
+		when(gradeMapping.getGradeMap()).thenReturn(gradeMap);
+
+		gradebook = mock(Gradebook.class);
+		when(gradebook.getUid()).thenReturn(SITE_ID);
+		when(gradebook.getSelectedGradeMapping()).thenReturn(gradeMapping);
+
+		Assignment assignment = mock(Assignment.class);
+		when(assignment.getId()).thenReturn(1L);
+		when(assignment.getName()).thenReturn("Assignment 1");
+		when(assignment.getPoints()).thenReturn(10.0);
+		when(assignment.isExtraCredit()).thenReturn(false);
+
+		CategoryDefinition category = mock(CategoryDefinition.class);
+		when(category.getId()).thenReturn(10L);
+		when(category.getName()).thenReturn("Quizzes");
+		when(category.getWeight()).thenReturn(0.5);
+		when(category.getAssignmentList()).thenReturn(Arrays.asList(assignment));
+
+		CommentDefinition comment = mock(CommentDefinition.class);
+		when(comment.getCommentText()).thenReturn("Good work");
+
+		Map<String,String> courseGrades = new HashMap<String,String>();
+		courseGrades.put("s1", "A");
+		courseGrades.put("s2", "B");
+
+		gradebookService = mock(GradebookService.class);
+		when(gradebookService.getAssignments(SITE_ID)).thenReturn(Arrays.asList(assignment));
+		when(gradebookService.getCategoryDefinitions(SITE_ID)).thenReturn(Arrays.asList(category));
+		when(gradebookService.getImportCourseGrade(SITE_ID)).thenReturn(courseGrades);
+		when(gradebookService.getAssignmentScoreString(SITE_ID, 1L, "u1")).thenReturn("9");
+		when(gradebookService.getAssignmentScoreString(SITE_ID, 1L, "u2")).thenReturn("6");
+		when(gradebookService.getAssignmentScoreComment(SITE_ID, 1L, "u2")).thenReturn(comment);
+
+		logic = new GradebookExportLogic();
+		logic.setServerConfigurationService(serverConfigurationService);
+		logic.setSiteService(siteService);
+		logic.setUserDirectoryService(userDirectoryService);
+		logic.setGradebookService(gradebookService);
+	}
+
+	@After
+	public void tearDown() {
+		Locale.setDefault(defaultLocale);
+	}
+
+	@Test
+	public void testAllColumns() {
+		CSVHelper csv = logic.buildSiteExport(site, gradebook);
+
+		assertEquals(Arrays.asList("Student ID", "Student Name", "Assignment 1 [10.0]", "Comments", "Quizzes [50%]", "Total Points Earned [Points Possible]", "Course Grade"), Arrays.asList(csv.getHeader()));
+
+		//students are sorted by last name, followed by the 4 footer rows
+		assertEquals(6, csv.getRows().size());
+		assertEquals(Arrays.asList("s2", "Brown, Bob", "6", "Good work", "60%", "6.0 [10.0]", "B"), Arrays.asList(csv.getRows().get(0)));
+		assertEquals(Arrays.asList("s1", "Smith, Amy", "9", null, "90%", "9.0 [10.0]", "A"), Arrays.asList(csv.getRows().get(1)));
+		assertEquals("Site ID", csv.getRows().get(3)[0]);
+		assertEquals("A=90.0,B=80.0", csv.getRows().get(5)[1]);
+	}
+
+	@Test
+	public void testNoUsers() {
+		when(userDirectoryService.getUsers(anyCollection())).thenReturn(new ArrayList<User>());
+
+		assertNull(logic.buildSiteExport(site, gradebook));
+	}
+
+
+	private User mockUser(String id, String eid, String lastName, String sortName) {
+		User u = mock(User.class);
+		when(u.getId()).thenReturn(id);
+		when(u.getEid()).thenReturn(eid);
+		when(u.getLastName()).thenReturn(lastName);
+		when(u.getSortName()).thenReturn(sortName);
+		return u;
+	}
+
+}